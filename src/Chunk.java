@@ -1,7 +1,10 @@
+import java.util.Arrays;
+
 /**
  * A chunk of data file
  *
  * Contains an offset, bytes of data, and size
+ * Only the first size_in_bytes bytes of the given data are copied.
  */
 class Chunk {
     private byte[] data;
@@ -9,7 +12,7 @@ class Chunk {
     private long size_in_bytes;
 
     Chunk(byte[] data, long offset, long size_in_bytes) {
-        this.data = data != null ? data.clone() : null;
+        this.data = data != null ? Arrays.copyOf(data, (int) size_in_bytes) : null;
         this.offset = offset;
         this.size_in_bytes = size_in_bytes;
     }
@@ -13,12 +13,15 @@ import java.util.ArrayList;
  */
 class DownloadableMetadata implements Serializable{
 	
+    private static final long serialVersionUID = 4959106515764356038L;
+
     private final String metadataFilename;
     private String filename;
     private String url;
     private long size;
     private long totalBytesWritten;
     private ArrayList<Range> downloaded;
+    private transient ArrayList<Range> priorityRanges;
 
     DownloadableMetadata(String url, long size) {
         this.url = url;
@@ -27,13 +30,14 @@ class DownloadableMetadata implements Serializable{
         this.size = size;
         this.totalBytesWritten = 0;
         this.downloaded = new ArrayList<Range>();
+        this.priorityRanges = new ArrayList<Range>();
     }
 
     private String getMetadataName(String filename) {
         return filename + ".metadata";
     }
 
-    private static String getName(String path) {
+    static String getName(String path) {
         return path.substring(path.lastIndexOf('/') + 1, path.length());
     }
 
@@ -60,7 +64,7 @@ class DownloadableMetadata implements Serializable{
         	
         	if(current.getStart() < start){
         		if(current.getEnd() >= start){
-        			Range newRange = new Range(current.getStart(), end);
+        			Range newRange = new Range(current.getStart(), Math.max(current.getEnd(), end));
         			this.downloaded.add(i, newRange);
             		this.downloaded.remove(i + 1);
             		return;
@@ -72,7 +76,7 @@ class DownloadableMetadata implements Serializable{
         	}
         	else{
         		if(current.getStart() <= end){
-        			Range newRange = new Range(start, current.getEnd());
+        			Range newRange = new Range(start, Math.max(current.getEnd(), end));
         			this.downloaded.add(i, newRange);
             		this.downloaded.remove(i + 1);
             		return;
@@ -93,6 +97,14 @@ class DownloadableMetadata implements Serializable{
         return this.filename;
     }
 
+    /**
+     * Get file URL.
+     * @return file URL.
+     */
+    public String getUrl() {
+        return this.url;
+    }
+
     /**
      * Get metadata file name.
      * @return metadata file name.
@@ -119,52 +131,136 @@ class DownloadableMetadata implements Serializable{
 
     /**
      * Check if the file download is completed.
-     * @return true if download completed, otherwise returns flase.
+     * @return true if download completed, otherwise returns flase (always false for an unknown size).
      */
     boolean isCompleted() {
+        if(this.size <= 0){
+            return false;
+        }
         Range range = this.getMissingRange();
         return range.getLength() == 1;
     }
 
     /**
      * Retrieve the first empty range located in Downloaded array list.
-     * @return missing range.
+     * @return missing range (an empty range at the end of the file if download completed).
      */
     public Range getMissingRange() {
-        if(this.downloaded.size() == 0){
-        	return new Range(0L, this.size);
-        }
-        
-        for(int i = 0; i < this.downloaded.size(); i++){
-        	Range current = this.downloaded.get(i);
+        Range missing = this.getMissingRange(new Range(0L, this.size));
+        return missing != null ? missing : new Range(this.size, this.size);
+    }
 
-        	// Case only one range in the array.
-        	if(this.downloaded.size() == 1 && i == 0){
-                if(current.getStart() != 0L){
-                    return new Range(0L, current.getStart());
-                }
-                else{
-                    return new Range(current.getEnd(), this.size);
-                }
-            }
-        	Range next = this.downloaded.get(i + 1);
-        	
-        	// Case first range is not including position 0.
-        	if(i == 0 && current.getStart() != 0L){
-        		return new Range(0L, current.getStart());
-        	} 
-        	// Case last range is not including last position.
-        	if(i == this.downloaded.size() - 1 && next.getEnd() != this.size -1){
-        		//return new Range(next.getEnd() + 1, this.size - 1);
-        		return new Range(current.getEnd(), this.size);
-        	}
-        	// Case of first missing range found. 
-        	if(current.getEnd() < next.getStart() - 1){
-        		return new Range(current.getEnd(), next.getStart());
-        	} else {
-                return new Range(next.getStart(), current.getEnd() -1);
-            }
-        }
-        return null;
+    /**
+     * Set the ranges which should be downloaded before the rest of the file.
+     * Priority ranges are not persisted, they are given again on every run.
+     * @param priorityRanges ranges ordered by importance.
+     */
+    void setPriorityRanges(ArrayList<Range> priorityRanges) {
+    	this.priorityRanges = priorityRanges != null ? priorityRanges : new ArrayList<Range>();
+    }
+
+    /**
+     * Get the priority ranges.
+     * @return priority ranges.
+     */
+    ArrayList<Range> getPriorityRanges() {
+    	if(this.priorityRanges == null){
+    		this.priorityRanges = new ArrayList<Range>();
+    	}
+    	return this.priorityRanges;
+    }
+
+    /**
+     * Retrieve the first empty range inside the priority ranges (by priority order).
+     * @return missing priority range, or null if all priority ranges are downloaded.
+     */
+    public Range getMissingPriorityRange() {
+    	for(Range priorityRange : this.getPriorityRanges()){
+    		Range missing = this.getMissingRange(priorityRange);
+    		if(missing != null){
+    			return missing;
+    		}
+    	}
+    	return null;
+    }
+
+    /**
+     * Retrieve the next range to download: a missing priority range if there is one,
+     * otherwise the first missing range of the file.
+     * @return next range to download.
+     */
+    public Range getNextRange() {
+    	Range range = this.getMissingPriorityRange();
+    	return range != null ? range : this.getMissingRange();
+    }
+
+    /**
+     * Retrieve the next range to download which is not already being downloaded.
+     * Priority ranges come first, as in getNextRange().
+     * @param inProgress ranges being downloaded right now (end position not included).
+     * @return next range to download, or null if every missing byte is in progress.
+     */
+    Range getNextRange(ArrayList<Range> inProgress) {
+    	for(Range priorityRange : this.getPriorityRanges()){
+    		Range missing = this.getMissingRange(priorityRange, inProgress);
+    		if(missing != null){
+    			return missing;
+    		}
+    	}
+    	return this.getMissingRange(new Range(0L, this.size), inProgress);
+    }
+
+    /**
+     * Check if the given range is already downloaded.
+     * @param range
+     * @return true if the whole range is downloaded, otherwise returns false.
+     */
+    boolean isAvailable(Range range) {
+    	return this.getMissingRange(range) == null;
+    }
+
+    /**
+     * Retrieve the first empty part of the given range.
+     * Both the given range and the returned range do not include their end position.
+     * @param range
+     * @return missing part of the range, or null if the whole range is downloaded.
+     */
+    private Range getMissingRange(Range range) {
+    	return this.getMissingRange(range, new ArrayList<Range>());
+    }
+
+    /**
+     * Retrieve the first part of the given range which is neither downloaded nor in progress.
+     * @param range
+     * @param inProgress ranges to treat as downloaded.
+     * @return missing part of the range, or null if there is none.
+     */
+    private Range getMissingRange(Range range, ArrayList<Range> inProgress) {
+    	ArrayList<Range> covering = new ArrayList<Range>(this.downloaded);
+    	covering.addAll(inProgress);
+    	long position = range.getStart();
+    	long end = Math.min(range.getEnd(), this.size);
+
+    	while(position < end){
+    		long nextStart = end;
+    		boolean covered = false;
+
+    		// Skip over ranges covering current position.
+    		for(Range current : covering){
+    			if(current.getStart() <= position && current.getEnd() > position){
+    				position = current.getEnd();
+    				covered = true;
+    				break;
+    			}
+    			if(current.getStart() > position){
+    				nextStart = Math.min(nextStart, current.getStart());
+    			}
+    		}
+
+    		if(!covered){
+    			return new Range(position, nextStart);
+    		}
+    	}
+    	return null;
     }
 }
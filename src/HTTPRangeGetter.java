@@ -7,7 +7,7 @@ import java.util.concurrent.BlockingQueue;
 
 /**
  * A runnable class which downloads a given url.
- * It reads CHUNK_SIZE at a time and writs it into a BlockingQueue.
+ * It reads CHUNK_SIZE (or a given chunk size) at a time and writs it into a BlockingQueue.
  * It supports downloading a range of data, and limiting the download rate using a token bucket.
  */
 public class HTTPRangeGetter implements Runnable {
@@ -18,24 +18,39 @@ public class HTTPRangeGetter implements Runnable {
     private final Range range;
     private final BlockingQueue<Chunk> outQueue;
     private TokenBucket tokenBucket;
+    private final int chunkSize;
+    private final TransferStatistics statistics;
 
     HTTPRangeGetter(
             String url,
             Range range,
             BlockingQueue<Chunk> outQueue,
             TokenBucket tokenBucket) {
+        this(url, range, outQueue, tokenBucket, CHUNK_SIZE, null);
+    }
+
+    HTTPRangeGetter(
+            String url,
+            Range range,
+            BlockingQueue<Chunk> outQueue,
+            TokenBucket tokenBucket,
+            int chunkSize,
+            TransferStatistics statistics) {
         this.url = url;
         this.range = range;
         this.outQueue = outQueue;
         this.tokenBucket = tokenBucket;
+        this.chunkSize = chunkSize;
+        this.statistics = statistics;
     }
 
     /**
      * Download chunks of the given range and put them in queue.
+     * Unlike run(), failures are thrown to the caller instead of terminating the process.
      * @throws IOException
      * @throws InterruptedException
      */
-    private void downloadRange() throws IOException, InterruptedException {
+    void downloadRange() throws IOException, InterruptedException {
     	
     	// Build range String for Http range property.
     	StringBuilder rangeProperty = new StringBuilder("bytes=");
@@ -51,31 +66,71 @@ public class HTTPRangeGetter implements Runnable {
 
         this.tokenBucket.take(CHUNK_SIZE);
 
-        connection.connect();
+        try {
+            long requestTime = System.currentTimeMillis();
+            connection.connect();
 
-        // Check response code.
-        response = connection.getResponseCode();
-        if(response / 100 != 2){
-            System.err.println("Download Failed");
-            throw new IOException("Response Code: " + response);
-        }
+            // Check response code.
+            response = connection.getResponseCode();
+            if(response / 100 != 2){
+                System.err.println("Download Failed");
+                throw new IOException("Response Code: " + response);
+            }
+            this.checkRange(connection, response);
+            if(this.statistics != null){
+                this.statistics.recordRequest(System.currentTimeMillis() - requestTime);
+            }
 
-        inputStream = connection.getInputStream();
-        byte[] buffer = new byte[CHUNK_SIZE];
-        long offset = this.range.getStart();
+            inputStream = connection.getInputStream();
+            byte[] buffer = new byte[this.chunkSize];
+            long offset = this.range.getStart();
+            long remaining = this.range.getLength();
 
-        // Read from input stream and put chuncks in queue.
-        while((readSize = inputStream.read(buffer)) != -1){
+            // Read from input stream and put chuncks in queue, never past the end of the range.
+            while(remaining > 0 && (readSize = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1){
 
-            this.tokenBucket.take(readSize);
-            Chunk chunk = new Chunk(buffer, offset, readSize);
-            outQueue.put(chunk);
-            offset += readSize;
+                this.tokenBucket.take(readSize);
+                Chunk chunk = new Chunk(buffer, offset, readSize);
+                outQueue.put(chunk);
+                offset += readSize;
+                remaining -= readSize;
+                if(this.statistics != null){
+                    this.statistics.recordBytes(readSize);
+                }
+            }
+        } finally {
+            if(inputStream != null){
+                inputStream.close();
+            }
+            connection.disconnect();
         }
-        if(inputStream != null){
-            inputStream.close();
+    }
+
+    /**
+     * Check that the response body starts at the start of the requested range.
+     * A server ignoring the Range header replies 200 with the whole file, which is only usable from position 0.
+     * @param connection
+     * @param response response code.
+     * @throws IOException
+     */
+    private void checkRange(HttpURLConnection connection, int response) throws IOException {
+        if(response != HttpURLConnection.HTTP_PARTIAL){
+            if(this.range.getStart() != 0L){
+                System.err.println("Download Failed");
+                throw new IOException("Range not supported, response Code: " + response);
+            }
+            return;
+        }
+
+        // Content-Range: bytes START-END/SIZE
+        String contentRange = connection.getHeaderField("Content-Range");
+        if(contentRange != null){
+            String prefix = "bytes " + this.range.getStart() + "-";
+            if(!contentRange.trim().startsWith(prefix)){
+                System.err.println("Download Failed");
+                throw new IOException("Unexpected Content-Range: " + contentRange);
+            }
         }
-        connection.disconnect();
     }
     
     /**
@@ -101,6 +156,9 @@ public class HTTPRangeGetter implements Runnable {
         try {
             this.downloadRange();
         } catch (IOException | InterruptedException e) {
+            if(this.statistics != null){
+                this.statistics.recordError();
+            }
             System.err.println("Download failed");
             System.exit(-1);
         }
@@ -0,0 +1,163 @@
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes how a host behaved in previous downloads: the best throughput observed with each connection count,
+ * the best connection count and the chunk size used with it, and running averages of throughput,
+ * time to first byte and error rate.
+ *
+ * The suggested connection count explores: while the best count is the largest tried, its double is suggested
+ * (up to MAX_CONNECTIONS), so the count keeps growing as long as more connections are faster.
+ *
+ * Every download adds an observation. Old observations lose weight over time (half-life of HALF_LIFE ms),
+ * so a profile which was not updated for a long time stops seeding new downloads.
+ */
+class HostProfile implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long HALF_LIFE = 7L * 24 * 60 * 60 * 1000;
+	private static final double MAX_WEIGHT = 4;
+	private static final double MIN_WEIGHT = 0.25;
+	private static final double MAX_ERROR_RATE = 0.1;
+	private static final int READS_PER_SECOND = 100;
+	private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+	private static final int MAX_CONNECTIONS = 16;
+
+	private int connections;
+	private int chunkSize;
+	private HashMap<Integer, Double> connectionThroughputs;
+	private double throughput;
+	private double timeToFirstByte;
+	private double errorRate;
+	private double weight;
+	private long lastUpdated;
+
+	HostProfile() {
+		this.connections = 1;
+		this.chunkSize = HTTPRangeGetter.CHUNK_SIZE;
+		this.connectionThroughputs = new HashMap<Integer, Double>();
+		this.weight = 0;
+		this.lastUpdated = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the weight of the profile's observations, decayed by their age.
+	 * @param now current time in ms.
+	 * @return decayed weight.
+	 */
+	private double getWeight(long now) {
+		double age = Math.max(0, now - this.lastUpdated);
+		return this.weight * Math.pow(0.5, age / HALF_LIFE);
+	}
+
+	/**
+	 * Check if the profile is recent enough to seed a new download.
+	 * @return true if the profile can be used, otherwise returns false.
+	 */
+	boolean isUsable() {
+		return this.getWeight(System.currentTimeMillis()) >= MIN_WEIGHT;
+	}
+
+	/**
+	 * Suggest the number of connections for the next download.
+	 * One connection less than the best observed count if the host started failing requests,
+	 * double the best observed count if it was not tried yet, otherwise the best observed count.
+	 * @return number of connections.
+	 */
+	int getSuggestedConnections() {
+		if(this.errorRate > MAX_ERROR_RATE){
+			return Math.max(1, this.connections - 1);
+		}
+		int next = Math.min(MAX_CONNECTIONS, this.connections * 2);
+		if(this.connectionThroughputs != null && !this.connectionThroughputs.containsKey(next)){
+			return next;
+		}
+		return this.connections;
+	}
+
+	/**
+	 * Suggest the chunk size for the next download.
+	 * @return chunk size in bytes.
+	 */
+	int getSuggestedChunkSize() {
+		return this.chunkSize;
+	}
+
+	/**
+	 * Get the average throughput.
+	 * @return throughput in bytes per second.
+	 */
+	double getThroughput() {
+		return this.throughput;
+	}
+
+	/**
+	 * Get the average time to first byte.
+	 * @return time to first byte in ms.
+	 */
+	double getTimeToFirstByte() {
+		return this.timeToFirstByte;
+	}
+
+	/**
+	 * Get the average error rate.
+	 * @return fraction of failed requests.
+	 */
+	double getErrorRate() {
+		return this.errorRate;
+	}
+
+	/**
+	 * Add the observation of a download run to the profile.
+	 * @param connections number of connections used.
+	 * @param statistics statistics of the run.
+	 * @param millis duration of the run in ms.
+	 */
+	void update(int connections, TransferStatistics statistics, long millis) {
+		long now = System.currentTimeMillis();
+		double decay = Math.pow(0.5, Math.max(0, now - this.lastUpdated) / (double) HALF_LIFE);
+		double oldWeight = this.getWeight(now);
+		double runThroughput = statistics.getBytes() * 1000.0 / Math.max(1, millis);
+
+		// Keep the fastest run of each connection count, older runs count less.
+		if(this.connectionThroughputs == null || oldWeight < MIN_WEIGHT){
+			this.connectionThroughputs = new HashMap<Integer, Double>();
+		}
+		for(Map.Entry<Integer, Double> entry : this.connectionThroughputs.entrySet()){
+			entry.setValue(entry.getValue() * decay);
+		}
+		Double throughput = this.connectionThroughputs.get(connections);
+		if(throughput == null || runThroughput > throughput){
+			this.connectionThroughputs.put(connections, runThroughput);
+		}
+
+		// Use the fastest connection count, with a chunk size matching its throughput per connection.
+		double bestThroughput = -1;
+		for(Map.Entry<Integer, Double> entry : this.connectionThroughputs.entrySet()){
+			if(entry.getValue() > bestThroughput){
+				bestThroughput = entry.getValue();
+				this.connections = entry.getKey();
+			}
+		}
+		this.chunkSize = getChunkSize(bestThroughput / this.connections);
+
+		this.throughput = (this.throughput * oldWeight + runThroughput) / (oldWeight + 1);
+		this.timeToFirstByte = (this.timeToFirstByte * oldWeight + statistics.getAverageTimeToFirstByte()) / (oldWeight + 1);
+		this.errorRate = (this.errorRate * oldWeight + statistics.getErrorRate()) / (oldWeight + 1);
+		this.weight = Math.min(MAX_WEIGHT, oldWeight + 1);
+		this.lastUpdated = now;
+	}
+
+	/**
+	 * Get a chunk size which takes about 1 / READS_PER_SECOND seconds to read from a single connection.
+	 * @param connectionThroughput throughput of a single connection in bytes per second.
+	 * @return power of 2 chunk size, between CHUNK_SIZE and MAX_CHUNK_SIZE.
+	 */
+	private static int getChunkSize(double connectionThroughput) {
+		long target = (long) (connectionThroughput / READS_PER_SECOND);
+		long chunkSize = Math.max(HTTPRangeGetter.CHUNK_SIZE, Long.highestOneBit(Math.max(1, target)));
+		return (int) Math.min(MAX_CHUNK_SIZE, chunkSize);
+	}
+}
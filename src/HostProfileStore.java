@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+
+/**
+ * Stores HostProfiles on disk, keyed by host (and port), so downloads can start from previously learned settings.
+ *
+ * The store is a single small file in the user's home directory, read once when a download starts
+ * and written once when it ends.
+ */
+class HostProfileStore {
+
+	private static final String PROFILES_FILENAME = ".idcdm.profiles";
+
+	private final String filename;
+	private HashMap<String, HostProfile> profiles;
+
+	HostProfileStore() {
+		this(System.getProperty("user.home") + File.separator + PROFILES_FILENAME);
+	}
+
+	HostProfileStore(String filename) {
+		this.filename = filename;
+		this.profiles = new HashMap<String, HostProfile>();
+	}
+
+	/**
+	 * Get the profile key of a URL.
+	 * @param url
+	 * @return host and port of the URL.
+	 */
+	static String getHost(String url) {
+		try {
+			return new URL(url).getAuthority();
+		} catch (MalformedURLException e) {
+			return url;
+		}
+	}
+
+	/**
+	 * Load profiles from disk, if the profiles file exists.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void load() {
+		File file = new File(this.filename);
+		if(!file.exists()){
+			return;
+		}
+		ObjectInputStream objectInputStream = null;
+		try {
+			objectInputStream = new ObjectInputStream(new FileInputStream(file));
+			this.profiles = (HashMap<String, HostProfile>) objectInputStream.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			System.err.println("Loading host profiles failed");
+		} finally {
+			try {
+				if(objectInputStream != null){
+					objectInputStream.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Save profiles to disk.
+	 * The profiles are written to a temporary file in the same directory, which then replaces the profiles file,
+	 * so a crash (or a concurrent download) never leaves a truncated profiles file behind.
+	 */
+	synchronized void save() {
+		File file = new File(this.filename).getAbsoluteFile();
+		File tempFile = null;
+		ObjectOutputStream objectOutputStream = null;
+		try {
+			tempFile = File.createTempFile(PROFILES_FILENAME, ".tmp", file.getParentFile());
+			objectOutputStream = new ObjectOutputStream(new FileOutputStream(tempFile));
+			objectOutputStream.writeObject(this.profiles);
+			objectOutputStream.close();
+			objectOutputStream = null;
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			System.err.println("Saving host profiles failed");
+		} finally {
+			try {
+				if(objectOutputStream != null){
+					objectOutputStream.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if(tempFile != null){
+				tempFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Get the usable profile of the URL's host.
+	 * @param url
+	 * @return host profile, or null if there is no recent enough profile.
+	 */
+	synchronized HostProfile get(String url) {
+		HostProfile profile = this.profiles.get(getHost(url));
+		return profile != null && profile.isUsable() ? profile : null;
+	}
+
+	/**
+	 * Add the observation of a download run to the profile of the URL's host.
+	 * @param url
+	 * @param connections number of connections used.
+	 * @param statistics statistics of the run.
+	 * @param millis duration of the run in ms.
+	 */
+	synchronized void update(String url, int connections, TransferStatistics statistics, long millis) {
+		String host = getHost(url);
+		HostProfile profile = this.profiles.get(host);
+		if(profile == null){
+			profile = new HostProfile();
+			this.profiles.put(host, profile);
+		}
+		profile.update(connections, statistics, millis);
+	}
+}
@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.concurrent.*;
 
 public class IdcDm {
 	static final int CHUNK_SIZE = 4096;
+	static final long PRIORITY_PRESET_SIZE = 1024 * 1024;
+	private static final String PRIORITY_OPTION = "--priority=";
 
     /**
      * Receive arguments from the command-line, provide some feedback and start the download.
@@ -15,11 +18,27 @@ public class IdcDm {
      * @param args command-line arguments
      */
     public static void main(String[] args) {
-        int numberOfWorkers = 1;
+        // Options may appear anywhere, the remaining arguments are positional.
+        ArrayList<String> positional = new ArrayList<String>();
+        String priority = null;
+        for (String arg : args) {
+            if (arg.startsWith(PRIORITY_OPTION))
+                priority = arg.substring(PRIORITY_OPTION.length());
+            else
+                positional.add(arg);
+        }
+        args = positional.toArray(new String[positional.size()]);
+
+        if (args.length >= 1 && (args[0].equals("--coordinator") || args[0].equals("--worker"))) {
+            cooperativeMain(args, priority);
+            return;
+        }
+
+        Integer numberOfWorkers = null;
         Long maxBytesPerSecond = null;
 
         if (args.length < 1 || args.length > 3) {
-            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+            printUsage();
             System.exit(1);
         } else if (args.length >= 2) {
             numberOfWorkers = Integer.parseInt(args[1]);
@@ -30,93 +49,248 @@ public class IdcDm {
         String url = args[0];
 
         System.err.printf("Downloading");
-        if (numberOfWorkers > 1)
+        if (numberOfWorkers != null && numberOfWorkers > 1)
             System.err.printf(" using %d connections", numberOfWorkers);
         if (maxBytesPerSecond != null)
             System.err.printf(" limited to %d Bps", maxBytesPerSecond);
+        if (priority != null)
+            System.err.printf(" prioritizing %s", priority);
         System.err.printf("...\n");
 
-        DownloadURL(url, numberOfWorkers, maxBytesPerSecond);
+        DownloadURL(url, numberOfWorkers, maxBytesPerSecond, priority);
+    }
+
+    /**
+     * Print command-line usage.
+     */
+    private static void printUsage() {
+        System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT] [--priority=PRIORITY]\n");
+        System.err.printf("\tjava IdcDm --coordinator PORT URL [LOCAL-CONNECTIONS] [MAX-DOWNLOAD-LIMIT] [--priority=PRIORITY]\n");
+        System.err.printf("\tjava IdcDm --worker HOST:PORT [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+        System.err.printf("\tPRIORITY: head, tail, head+tail or a comma separated list of byte ranges (e.g. 0-1023,-65536)\n");
+    }
+
+    /**
+     * Receive coordinator / worker arguments from the command-line and start a cooperative download.
+     * The coordinator leases segments to workers in any number of processes, which write them to shared storage.
+     *
+     * @param args positional command-line arguments
+     * @param priority priority preset or list of byte ranges to download first (may be null)
+     */
+    private static void cooperativeMain(String[] args, String priority) {
+        boolean isCoordinator = args[0].equals("--coordinator");
+        int minArgs = isCoordinator ? 3 : 2;
+        if (args.length < minArgs || args.length > minArgs + 2) {
+            printUsage();
+            System.exit(1);
+        }
+
+        int numberOfWorkers = 1;
+        Long maxBytesPerSecond = null;
+        if (args.length > minArgs)
+            numberOfWorkers = Integer.parseInt(args[minArgs]);
+        if (args.length > minArgs + 1)
+            maxBytesPerSecond = Long.parseLong(args[minArgs + 1]);
+
+        if (isCoordinator) {
+            CoordinateURL(args[2], Integer.parseInt(args[1]), numberOfWorkers, maxBytesPerSecond, priority);
+        } else {
+            String host = args[1].substring(0, args[1].lastIndexOf(':'));
+            int port = Integer.parseInt(args[1].substring(args[1].lastIndexOf(':') + 1));
+            try {
+                String[] info = SegmentWorker.getInfo(host, port);
+                System.err.printf("Downloading %s for coordinator %s...\n", info[2], args[1]);
+                runSegmentWorkers(host, port, info[2], numberOfWorkers, maxBytesPerSecond);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Download failed");
+            }
+        }
+    }
+
+    /**
+     * Initiate the file's metadata and start a SegmentCoordinator for it.
+     * Unless numberOfWorkers is 0, also download segments in this process.
+     * Finally, the coordinator prints "Download succeeded/failed" and deletes the metadata as needed.
+     *
+     * @param url URL to download
+     * @param port coordinator port
+     * @param numberOfWorkers number of concurrent connections of this process
+     * @param maxBytesPerSecond limit on download bytes-per-second of this process
+     * @param priority priority preset or list of byte ranges to download first (may be null)
+     */
+    private static void CoordinateURL(String url, int port, int numberOfWorkers, Long maxBytesPerSecond, String priority) {
+    	long size = getContentLength(url);
+    	if(size <= 0){
+    		System.err.println("Unknown file size");
+    		System.err.println("Download failed");
+    		return;
+    	}
+    	DownloadableMetadata downloadableMetadata = loadMetadata(url, size);
+    	downloadableMetadata.setPriorityRanges(parsePriorityRanges(priority, size));
+
+    	SegmentCoordinator coordinator;
+    	try {
+    		coordinator = new SegmentCoordinator(downloadableMetadata, port);
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		System.err.println("Download failed");
+    		return;
+    	}
+    	System.err.printf("Coordinating download on port %d...\n", coordinator.getPort());
+
+    	Thread coordinatorT = new Thread(coordinator);
+    	coordinatorT.start();
+    	if(numberOfWorkers > 0){
+    		runSegmentWorkers("localhost", coordinator.getPort(), url, numberOfWorkers, maxBytesPerSecond);
+    	}
+
+    	try {
+			coordinatorT.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.err.println("Download failed");
+		}
+    }
+
+    /**
+     * Start a pool of SegmentWorkers sharing a TokenBucket and RateLimiter, and join them.
+     *
+     * @param host coordinator host
+     * @param port coordinator port
+     * @param url URL to download
+     * @param numberOfWorkers number of concurrent connections
+     * @param maxBytesPerSecond limit on download bytes-per-second
+     */
+    private static void runSegmentWorkers(String host, int port, String url, int numberOfWorkers, Long maxBytesPerSecond) {
+    	maxBytesPerSecond = maxBytesPerSecond == null ? Long.MAX_VALUE : maxBytesPerSecond;
+    	TokenBucket tokenBucket = new TokenBucket(maxBytesPerSecond);
+    	Thread rateLimiterT = new Thread(new RateLimiter(tokenBucket, maxBytesPerSecond));
+    	rateLimiterT.start();
+
+    	Thread[] threads = new Thread[numberOfWorkers];
+    	for(int i = 0; i < numberOfWorkers; i++){
+    		threads[i] = new Thread(new SegmentWorker(host, port, url, tokenBucket));
+    		threads[i].start();
+    	}
+
+    	try {
+    		for(int i = 0; i < threads.length; i++){
+    			threads[i].join();
+    		}
+    		tokenBucket.terminate();
+    		rateLimiterT.join();
+    	} catch (InterruptedException e) {
+    		e.printStackTrace();
+    		System.err.println("Download failed");
+    	}
     }
 
     /**
-     * Initiate the file's metadata, and iterate over missing ranges. For each:
+     * Initiate the file's metadata, and iterate over missing ranges (priority ranges first). For each:
      * 1. Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, RateLimiter, and a pool of HTTPRangeGetters
      * 2. Join the HTTPRangeGetters, send finish marker to the Queue and terminate the TokenBucket
      * 3. Join the FileWriter and RateLimiter
      *
      * Finally, print "Download succeeded/failed" and delete the metadata as needed.
      *
+     * The number of connections (unless given) and the chunk size are seeded from the host's profile,
+     * and the profile is updated with this run's statistics when the process exits.
+     * Rate limited runs do not update the profile, since their throughput is not the host's,
+     * and keep the default chunk size, so a single read never takes much more than the limit allows.
+     *
      * @param url URL to download
-     * @param numberOfWorkers number of concurrent connections
+     * @param numberOfWorkers number of concurrent connections (null to use the host's profile)
      * @param maxBytesPerSecond limit on download bytes-per-second
+     * @param priority priority preset or list of byte ranges to download first (may be null)
      */
-    private static void DownloadURL(String url, int numberOfWorkers, Long maxBytesPerSecond) {
+    private static void DownloadURL(final String url, Integer numberOfWorkers, Long maxBytesPerSecond, String priority) {
+    	// Seed settings from the host's profile.
+    	final HostProfileStore hostProfileStore = new HostProfileStore();
+    	hostProfileStore.load();
+    	HostProfile hostProfile = hostProfileStore.get(url);
+    	int chunkSize = HTTPRangeGetter.CHUNK_SIZE;
+    	if(hostProfile != null){
+    		if(maxBytesPerSecond == null){
+    			chunkSize = hostProfile.getSuggestedChunkSize();
+    		}
+    		if(numberOfWorkers == null){
+    			numberOfWorkers = hostProfile.getSuggestedConnections();
+    		}
+    		System.err.printf("Using host profile: %d connections, %d bytes chunks (%.0f Bps, %.0f ms to first byte)\n",
+    				numberOfWorkers, chunkSize, hostProfile.getThroughput(), hostProfile.getTimeToFirstByte());
+    	} else if(numberOfWorkers == null){
+    		numberOfWorkers = 1;
+    	}
+
+    	// Update the host's profile when the process exits (HTTPRangeGetter exits on failures).
+    	final int connections = numberOfWorkers;
+    	final TransferStatistics statistics = new TransferStatistics();
+    	final long startTime = System.currentTimeMillis();
+    	if(maxBytesPerSecond == null){
+    		Runtime.getRuntime().addShutdownHook(new Thread() {
+    			@Override
+    			public void run() {
+    				if(statistics.getBytes() > 0 || statistics.getErrorRate() > 0){
+    					hostProfileStore.update(url, connections, statistics, System.currentTimeMillis() - startTime);
+    					hostProfileStore.save();
+    				}
+    			}
+    		});
+    	}
+
     	long size = getContentLength(url);
-    	// Initiate DownloadableMetadata.
-    	DownloadableMetadata downloadableMetadata = new DownloadableMetadata(url, size);
-    	FileInputStream fileInputStream = null;
-    	ObjectInputStream objectInputStream = null;
-    	File file = null;
-    	try {
-			file = new File(downloadableMetadata.getMetaDataFilename());
-			// If file exist (resuming downloading) update downloadableMetadata.
-			if(file.exists()){
-				fileInputStream = new FileInputStream(file);
-				objectInputStream = new ObjectInputStream(fileInputStream);
-				downloadableMetadata = (DownloadableMetadata) objectInputStream.readObject();
-			}
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
-			System.err.println("Resuming download failed");
-		} finally {
-			try {
-				if(fileInputStream != null){
-					fileInputStream.close();
-				}
-				if(objectInputStream != null){
-				objectInputStream.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-    	// Initiate Blocking Queue.
-		ArrayBlockingQueue<Chunk> blockingQueue = new ArrayBlockingQueue<Chunk>((int) size);
-		
-		// Initiate FileWriter.
-		FileWriter fileWriter = new FileWriter(downloadableMetadata, blockingQueue);
+    	if(size <= 0){
+    		System.err.println("Unknown file size");
+    		System.err.println("Download failed");
+    		return;
+    	}
+    	DownloadableMetadata downloadableMetadata = loadMetadata(url, size);
+    	File file = new File(downloadableMetadata.getMetaDataFilename());
+
+		// Set priority ranges (they are not kept in the metadata file).
+		ArrayList<Range> priorityRanges = parsePriorityRanges(priority, size);
+		downloadableMetadata.setPriorityRanges(priorityRanges);
+		boolean[] reported = new boolean[priorityRanges.size()];
+		reportAvailablePriorityRanges(downloadableMetadata, reported);
 
 		maxBytesPerSecond = maxBytesPerSecond == null ? Long.MAX_VALUE : maxBytesPerSecond;
 
-		// Initiate TokenBucket.
-    	TokenBucket tokenBucket = new TokenBucket(maxBytesPerSecond);
+    	while(!downloadableMetadata.isCompleted()){
 
-    	// Initiate RateLimiter.
-    	RateLimiter rateLimiter = new RateLimiter(tokenBucket, maxBytesPerSecond);
+    		// Initiate Blocking Queue.
+    		ArrayBlockingQueue<Chunk> blockingQueue = new ArrayBlockingQueue<Chunk>((int) size);
 
-    	// Initiate and start fileWriter and rateLimiter threads.
-    	Thread fileWriterT = new Thread(fileWriter);
-    	Thread rateLimiterT = new Thread(rateLimiter);
-    	fileWriterT.start();
-    	rateLimiterT.start();
+    		// Initiate FileWriter.
+    		FileWriter fileWriter = new FileWriter(downloadableMetadata, blockingQueue);
 
-    	Thread[] threads = new Thread[numberOfWorkers];
-    	
-    	while(!downloadableMetadata.isCompleted()){
+    		// Initiate TokenBucket.
+    		TokenBucket tokenBucket = new TokenBucket(maxBytesPerSecond);
+
+    		// Initiate RateLimiter.
+    		RateLimiter rateLimiter = new RateLimiter(tokenBucket, maxBytesPerSecond);
+
+    		// Initiate and start fileWriter and rateLimiter threads.
+    		Thread fileWriterT = new Thread(fileWriter);
+    		Thread rateLimiterT = new Thread(rateLimiter);
+    		fileWriterT.start();
+    		rateLimiterT.start();
 
-			Range rangeReader = downloadableMetadata.getMissingRange();
-			long workerPartSize = rangeReader.getLength() / numberOfWorkers;
+			Range rangeReader = downloadableMetadata.getNextRange();
+			int rangeWorkers = (int) Math.max(1L, Math.min(numberOfWorkers, rangeReader.getLength() - 1));
+			long workerPartSize = rangeReader.getLength() / rangeWorkers;
     		long startPos;
     		long endPos = 0L;
+    		Thread[] threads = new Thread[rangeWorkers];
 
     		// Start threads with partial ranges (based on num of workers).
-    		for(int i = 0; i < numberOfWorkers; i++){
+    		for(int i = 0; i < rangeWorkers; i++){
     			startPos = i == 0 ? rangeReader.getStart() : endPos;
-    			endPos = i == numberOfWorkers - 1 ? downloadableMetadata.getSize() - 1: startPos + workerPartSize;
+    			endPos = i == rangeWorkers - 1 ? rangeReader.getEnd() : startPos + workerPartSize;
     			
     			Range currentRange = new Range(startPos, endPos);
-    			HTTPRangeGetter httpRangeGetter = new HTTPRangeGetter(url, currentRange, blockingQueue, tokenBucket);
+    			HTTPRangeGetter httpRangeGetter = new HTTPRangeGetter(url, currentRange, blockingQueue, tokenBucket,
+    					chunkSize, statistics);
     			threads[i] = new Thread(httpRangeGetter);
     			threads[i].start();
     			
@@ -147,7 +321,8 @@ public class IdcDm {
 				e.printStackTrace();
 				System.err.println("Download failed");
 			}
-    		
+
+    		reportAvailablePriorityRanges(downloadableMetadata, reported);
     	}
     	
     	// Print download status.
@@ -159,11 +334,115 @@ public class IdcDm {
     		System.err.println("Download failed");
     	}   	
     }
+
+    /**
+     * Initiate the file's metadata, loading it from the metadata file when resuming a download.
+     * @param url URL to download
+     * @param size file size
+     * @return file's metadata.
+     */
+    static DownloadableMetadata loadMetadata(String url, long size) {
+    	DownloadableMetadata downloadableMetadata = new DownloadableMetadata(url, size);
+    	FileInputStream fileInputStream = null;
+    	ObjectInputStream objectInputStream = null;
+    	File file = null;
+    	try {
+			file = new File(downloadableMetadata.getMetaDataFilename());
+			// If file exist (resuming downloading) update downloadableMetadata.
+			if(file.exists()){
+				fileInputStream = new FileInputStream(file);
+				objectInputStream = new ObjectInputStream(fileInputStream);
+				downloadableMetadata = (DownloadableMetadata) objectInputStream.readObject();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			e.printStackTrace();
+			System.err.println("Resuming download failed");
+		} finally {
+			try {
+				if(fileInputStream != null){
+					fileInputStream.close();
+				}
+				if(objectInputStream != null){
+				objectInputStream.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+    	return downloadableMetadata;
+    }
+
+    /**
+     * Parse priority ranges from a preset name or a comma separated list of byte ranges.
+     * Presets: "head" (first PRIORITY_PRESET_SIZE bytes), "tail" (last PRIORITY_PRESET_SIZE bytes) and "head+tail".
+     * Byte ranges use the Http range syntax: "START-END" (inclusive), "START-" or "-SUFFIX_LENGTH".
+     * @param priority priority preset or list of byte ranges (may be null).
+     * @param size file size.
+     * @return priority ranges ordered by importance (end position not included).
+     */
+    static ArrayList<Range> parsePriorityRanges(String priority, long size) {
+    	ArrayList<Range> ranges = new ArrayList<Range>();
+    	if(priority == null || size <= 0){
+    		return ranges;
+    	}
+
+    	long presetSize = Math.min(PRIORITY_PRESET_SIZE, size);
+    	for(String part : priority.split("[,+]")){
+    		part = part.trim();
+    		if(part.isEmpty()){
+    			continue;
+    		}
+
+    		Range range = null;
+    		try {
+    			if(part.equalsIgnoreCase("head")){
+    				range = new Range(0L, presetSize);
+    			} else if(part.equalsIgnoreCase("tail")){
+    				range = new Range(size - presetSize, size);
+    			} else if(part.startsWith("-")){
+    				long suffixLength = Math.min(Long.parseLong(part.substring(1)), size);
+    				range = new Range(size - suffixLength, size);
+    			} else if(part.contains("-")){
+    				String[] bounds = part.split("-", 2);
+    				long start = Long.parseLong(bounds[0]);
+    				long end = bounds[1].isEmpty() ? size : Math.min(Long.parseLong(bounds[1]) + 1, size);
+    				range = new Range(start, end);
+    			}
+    		} catch (NumberFormatException e) {
+    			range = null;
+    		}
+
+    		// Skip unknown names, malformed and empty ranges.
+    		if(range == null || range.getStart() < 0 || range.getStart() >= range.getEnd()){
+    			System.err.println("Invalid priority: " + part);
+    			continue;
+    		}
+    		ranges.add(range);
+    	}
+    	return ranges;
+    }
+
+    /**
+     * Print every priority range which became available since the last call.
+     * @param downloadableMetadata
+     * @param reported flags of already reported priority ranges.
+     */
+    static void reportAvailablePriorityRanges(DownloadableMetadata downloadableMetadata, boolean[] reported) {
+    	ArrayList<Range> priorityRanges = downloadableMetadata.getPriorityRanges();
+    	for(int i = 0; i < reported.length; i++){
+    		Range range = priorityRanges.get(i);
+    		if(!reported[i] && downloadableMetadata.isAvailable(range)){
+    			System.err.println("Priority range " + range.getStart() + "-" + (range.getEnd() - 1) + " available");
+    			reported[i] = true;
+    		}
+    	}
+    }
     
     /**
      * Get Content-Length (file size) using Http HEAD request.
      * @param url
-     * @return content-length (file size).
+     * @return content-length (file size), 0 if the request failed or -1 if the size is unknown.
      * @throws IOException
      * @throws InterruptedException
      */
@@ -175,11 +454,13 @@ public class IdcDm {
             connection = (HttpURLConnection) urlToConnect.openConnection();
             connection.setRequestMethod("HEAD");
             connection.connect();
-            return connection.getContentLength();
+            return connection.getContentLengthLong();
     	} catch (IOException e){
     		e.printStackTrace();
     	} finally {
-    		connection.disconnect();
+    		if(connection != null){
+    			connection.disconnect();
+    		}
     	}
     	return 0L;
     }
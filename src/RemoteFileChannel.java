@@ -0,0 +1,343 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A read-only SeekableByteChannel view of a URL, which downloads only the parts of the file being read.
+ *
+ * The file is read in fixed-size blocks, fetched on demand using HTTPRangeGetter and kept in a bounded LRU cache.
+ * Neighbouring missing blocks are fetched with a single range request, and when reads are sequential
+ * the next READ_AHEAD_BLOCKS blocks are fetched along with them.
+ *
+ * Optionally, evicted blocks are spilled to the (sparse) download file and tracked by its DownloadableMetadata,
+ * so they are read back from disk later and count as downloaded when the file is downloaded with IdcDm.
+ */
+class RemoteFileChannel implements SeekableByteChannel {
+
+	static final int BLOCK_SIZE = 64 * 1024;
+	static final int MAX_CACHED_BLOCKS = 256;
+	private static final int READ_AHEAD_BLOCKS = 4;
+	private static final int MAX_BLOCKS_PER_REQUEST = 64;
+
+	private final String url;
+	private final long size;
+	private final int blockSize;
+	private final int maxCachedBlocks;
+	private final LinkedHashMap<Long, byte[]> cache;
+	private final TokenBucket tokenBucket;
+	private final DownloadableMetadata downloadableMetadata;
+	private RandomAccessFile spillFile;
+	private long position;
+	private long lastReadEnd;
+	private boolean isOpen;
+
+	RemoteFileChannel(String url) throws IOException {
+		this(url, BLOCK_SIZE, MAX_CACHED_BLOCKS, false);
+	}
+
+	/**
+	 * @param url URL to read.
+	 * @param blockSize size of the fetched and cached blocks.
+	 * @param maxCachedBlocks number of blocks kept in memory.
+	 * @param spillToDisk true to keep evicted blocks in the download file.
+	 * @throws IOException
+	 */
+	RemoteFileChannel(String url, int blockSize, int maxCachedBlocks, boolean spillToDisk) throws IOException {
+		this.url = url;
+		this.size = IdcDm.getContentLength(url);
+		if(this.size <= 0){
+			throw new IOException("Unknown size of " + url);
+		}
+		this.blockSize = blockSize;
+		this.maxCachedBlocks = Math.max(1, maxCachedBlocks);
+		this.cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+		this.tokenBucket = new TokenBucket(Long.MAX_VALUE);
+		this.position = 0;
+		this.lastReadEnd = -1;
+		this.isOpen = true;
+
+		if(spillToDisk){
+			this.downloadableMetadata = IdcDm.loadMetadata(url, this.size);
+			this.spillFile = new RandomAccessFile(this.downloadableMetadata.getFilename(), "rw");
+		} else {
+			this.downloadableMetadata = null;
+			this.spillFile = null;
+		}
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		this.ensureOpen();
+		if(this.position >= this.size){
+			return -1;
+		}
+
+		long end = Math.min(this.size, this.position + dst.remaining());
+		long lastBlock = (end - 1) / this.blockSize;
+
+		// Read ahead when this read continues the previous one.
+		if(this.position == this.lastReadEnd){
+			lastBlock = Math.min(lastBlock + READ_AHEAD_BLOCKS, (this.size - 1) / this.blockSize);
+		}
+
+		int read = 0;
+		while(this.position < end){
+			long index = this.position / this.blockSize;
+			byte[] block;
+			try {
+				block = this.getBlock(index, lastBlock);
+			} catch (IOException e) {
+				// Bytes already transferred to dst must be reported, the failure repeats on the next read.
+				if(read > 0){
+					break;
+				}
+				throw e;
+			}
+			int offset = (int) (this.position - index * this.blockSize);
+			int length = (int) Math.min(block.length - offset, end - this.position);
+			dst.put(block, offset, length);
+			this.position += length;
+			read += length;
+		}
+		this.lastReadEnd = this.position;
+		return read;
+	}
+
+	/**
+	 * Get a block from the cache, the spill file, or the server.
+	 * On a miss, the following missing blocks up to lastBlock are fetched in the same request.
+	 * @param index block index.
+	 * @param lastBlock index of the last block worth fetching along with this one.
+	 * @return block data.
+	 * @throws IOException
+	 */
+	private byte[] getBlock(long index, long lastBlock) throws IOException {
+		byte[] block = this.cache.get(index);
+		if(block != null){
+			return block;
+		}
+
+		block = this.readSpilledBlock(index);
+		if(block != null){
+			this.cacheBlock(index, block);
+			return block;
+		}
+
+		// Coalesce neighbouring missing blocks into one range request.
+		long last = index;
+		long maxBlocks = Math.min(MAX_BLOCKS_PER_REQUEST, this.maxCachedBlocks);
+		while(last < lastBlock && last - index + 1 < maxBlocks
+				&& !this.cache.containsKey(last + 1) && !this.isSpilled(last + 1)){
+			last++;
+		}
+
+		byte[][] blocks = this.fetchBlocks(index, last);
+		for(int i = 0; i < blocks.length; i++){
+			this.cacheBlock(index + i, blocks[i]);
+		}
+		return blocks[0];
+	}
+
+	/**
+	 * Fetch a run of blocks using a single range request.
+	 * @param first index of the first block.
+	 * @param last index of the last block.
+	 * @return data of the blocks.
+	 * @throws IOException
+	 */
+	private byte[][] fetchBlocks(long first, long last) throws IOException {
+		long start = first * this.blockSize;
+		long end = Math.min(this.size, (last + 1) * this.blockSize);
+		byte[] data = new byte[(int) (end - start)];
+
+		LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+		HTTPRangeGetter httpRangeGetter = new HTTPRangeGetter(this.url, new Range(start, end - 1), queue, this.tokenBucket);
+		try {
+			httpRangeGetter.downloadRange();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Fetching range " + start + "-" + (end - 1) + " interrupted");
+		}
+
+		long received = 0;
+		for(Chunk chunk : queue){
+			int offset = (int) (chunk.getOffset() - start);
+			int length = (int) Math.min(chunk.getSizeInBytes(), data.length - offset);
+			if(length <= 0){
+				break;
+			}
+			System.arraycopy(chunk.getData(), 0, data, offset, length);
+			received += length;
+		}
+		if(received != data.length){
+			throw new IOException("Range " + start + "-" + (end - 1) + " incomplete: received " + received + " bytes");
+		}
+
+		// Split the range into blocks.
+		byte[][] blocks = new byte[(int) (last - first + 1)][];
+		for(int i = 0; i < blocks.length; i++){
+			int offset = i * this.blockSize;
+			int length = Math.min(this.blockSize, data.length - offset);
+			blocks[i] = new byte[length];
+			System.arraycopy(data, offset, blocks[i], 0, length);
+		}
+		return blocks;
+	}
+
+	/**
+	 * Add a block to the cache, evicting (and spilling) the least recently used blocks if the cache is full.
+	 * @param index block index.
+	 * @param block block data.
+	 * @throws IOException
+	 */
+	private void cacheBlock(long index, byte[] block) throws IOException {
+		this.cache.put(index, block);
+		Iterator<Map.Entry<Long, byte[]>> iterator = this.cache.entrySet().iterator();
+		while(this.cache.size() > this.maxCachedBlocks && iterator.hasNext()){
+			Map.Entry<Long, byte[]> eldest = iterator.next();
+			this.spillBlock(eldest.getKey(), eldest.getValue());
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Get the range of a block.
+	 * @param index block index.
+	 * @return block range (end position not included).
+	 */
+	private Range getBlockRange(long index) {
+		long start = index * this.blockSize;
+		return new Range(start, Math.min(this.size, start + this.blockSize));
+	}
+
+	/**
+	 * Check if a block is in the spill file.
+	 * @param index block index.
+	 * @return true if the block was spilled (or downloaded before), otherwise returns false.
+	 */
+	private boolean isSpilled(long index) {
+		return this.downloadableMetadata != null && this.downloadableMetadata.isAvailable(this.getBlockRange(index));
+	}
+
+	/**
+	 * Read a block from the spill file.
+	 * @param index block index.
+	 * @return block data, or null if the block is not in the spill file.
+	 * @throws IOException
+	 */
+	private byte[] readSpilledBlock(long index) throws IOException {
+		if(!this.isSpilled(index)){
+			return null;
+		}
+		Range range = this.getBlockRange(index);
+		byte[] block = new byte[(int) (range.getEnd() - range.getStart())];
+		this.spillFile.seek(range.getStart());
+		this.spillFile.readFully(block);
+		return block;
+	}
+
+	/**
+	 * Write a block to the spill file, unless spilling is disabled or the block is already there.
+	 * @param index block index.
+	 * @param block block data.
+	 * @throws IOException
+	 */
+	private void spillBlock(long index, byte[] block) throws IOException {
+		if(this.spillFile == null || this.isSpilled(index)){
+			return;
+		}
+		Range range = this.getBlockRange(index);
+		this.spillFile.seek(range.getStart());
+		this.spillFile.write(block);
+		this.downloadableMetadata.addRange(range);
+	}
+
+	/**
+	 * Spill the cached blocks and store the download file's metadata to disk.
+	 * @throws IOException
+	 */
+	private void saveSpilledBlocks() throws IOException {
+		for(Map.Entry<Long, byte[]> entry : this.cache.entrySet()){
+			this.spillBlock(entry.getKey(), entry.getValue());
+		}
+		this.spillFile.close();
+
+		ObjectOutputStream metadataStream = new ObjectOutputStream(
+				new FileOutputStream(this.downloadableMetadata.getMetaDataFilename()));
+		try {
+			metadataStream.writeObject(this.downloadableMetadata);
+		} finally {
+			metadataStream.close();
+		}
+
+		// Same as IdcDm: a completed file does not keep its metadata.
+		if(this.downloadableMetadata.isCompleted()){
+			new File(this.downloadableMetadata.getMetaDataFilename()).delete();
+		}
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if(!this.isOpen){
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		this.ensureOpen();
+		return this.position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		this.ensureOpen();
+		if(newPosition < 0){
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		this.ensureOpen();
+		return this.size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return this.isOpen;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(!this.isOpen){
+			return;
+		}
+		this.isOpen = false;
+		if(this.spillFile != null){
+			this.saveSpilledBlocks();
+		}
+		this.cache.clear();
+	}
+}
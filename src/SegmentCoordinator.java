@@ -0,0 +1,339 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Leases segments of a single file to SegmentWorkers (in this process or in other processes / hosts),
+ * and merges their completions into one authoritative DownloadableMetadata.
+ *
+ * Workers talk to the coordinator over TCP with one line per request and one line per reply:
+ *
+ * - INFO: reply "FILE size url"
+ * - LEASE: reply "RANGE id start end" (end not included), "WAIT" if every missing byte is leased, or "DONE"
+ * - RENEW id bytes: sent every RENEW_INTERVAL while downloading, with the number of bytes written so far;
+ *   the lease is extended if bytes grew, reply "OK" (or "EXPIRED" if the lease was dropped)
+ * - COMPLETE id start end: the range is on disk, reply "OK" (or "ERROR" if it is not part of the lease)
+ * - RELEASE id: the lease is given up, reply "OK"
+ *
+ * A lease which is not completed or renewed with progress within LEASE_TIMEOUT is dropped,
+ * so its range is leased again to another worker.
+ * The coordinator stops once the download is completed and all workers disconnected,
+ * or fails once no worker was connected and no progress was made for IDLE_TIMEOUT.
+ */
+class SegmentCoordinator implements Runnable {
+
+	static final long LEASE_SIZE = 1024 * 1024;
+	private static final long LEASE_TIMEOUT = 30000;
+	static final long RENEW_INTERVAL = LEASE_TIMEOUT / 3;
+	// Workers send a request at least every RENEW_INTERVAL, so a silent connection is dead.
+	private static final int READ_TIMEOUT = (int) (LEASE_TIMEOUT * 3);
+	private static final long IDLE_TIMEOUT = LEASE_TIMEOUT * 2;
+
+	private final DownloadableMetadata downloadableMetadata;
+	private final ServerSocket serverSocket;
+	private final ArrayList<Lease> leases;
+	private final HashMap<Long, Range> leasedRanges;
+	private long nextLeaseId;
+	private int connections;
+	private long lastActivity;
+	private int percent;
+	private final boolean[] reported;
+
+	/**
+	 * @param downloadableMetadata file's metadata, with its priority ranges already set.
+	 * @param port port to listen on (0 for any free port).
+	 * @throws IOException
+	 */
+	SegmentCoordinator(DownloadableMetadata downloadableMetadata, int port) throws IOException {
+		this.downloadableMetadata = downloadableMetadata;
+		this.serverSocket = new ServerSocket(port);
+		this.leases = new ArrayList<Lease>();
+		this.leasedRanges = new HashMap<Long, Range>();
+		this.nextLeaseId = 0;
+		this.connections = 0;
+		this.lastActivity = System.currentTimeMillis();
+		this.percent = -1;
+		// Wake up from accept() periodically to check for idleness.
+		this.serverSocket.setSoTimeout((int) RENEW_INTERVAL);
+		this.reported = new boolean[downloadableMetadata.getPriorityRanges().size()];
+	}
+
+	/**
+	 * Get the port the coordinator listens on.
+	 * @return port.
+	 */
+	int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Lease the next missing range (priority ranges first) which is not leased already.
+	 * @return lease, or null if every missing byte is leased.
+	 */
+	private synchronized Lease lease() {
+		long now = System.currentTimeMillis();
+		ArrayList<Range> leased = new ArrayList<Range>();
+
+		// Drop expired leases, their ranges are leased again.
+		Iterator<Lease> iterator = this.leases.iterator();
+		while(iterator.hasNext()){
+			Lease lease = iterator.next();
+			if(lease.expiration < now){
+				System.err.println("Lease " + lease.id + " expired");
+				iterator.remove();
+			} else {
+				leased.add(lease.range);
+			}
+		}
+
+		Range missing = this.downloadableMetadata.getNextRange(leased);
+		if(missing == null){
+			return null;
+		}
+		long end = Math.min(missing.getEnd(), missing.getStart() + LEASE_SIZE);
+		Lease lease = new Lease(this.nextLeaseId++, new Range(missing.getStart(), end), now + LEASE_TIMEOUT);
+		this.leases.add(lease);
+		this.leasedRanges.put(lease.id, lease.range);
+		return lease;
+	}
+
+	/**
+	 * Extend a lease if its worker made progress since the last renewal.
+	 * @param id lease id.
+	 * @param bytes number of bytes the worker wrote so far.
+	 * @return true if the lease is still held, false if it expired.
+	 */
+	private synchronized boolean renew(long id, long bytes) {
+		for(Lease lease : this.leases){
+			if(lease.id == id){
+				if(bytes > lease.progress){
+					this.lastActivity = System.currentTimeMillis();
+					lease.progress = bytes;
+					lease.expiration = System.currentTimeMillis() + LEASE_TIMEOUT;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Drop a lease, so its range is leased again.
+	 * @param id lease id.
+	 */
+	private synchronized void release(long id) {
+		this.leasedRanges.remove(id);
+		Iterator<Lease> iterator = this.leases.iterator();
+		while(iterator.hasNext()){
+			if(iterator.next().id == id){
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Merge a completed range into the metadata and store the metadata to disk.
+	 * Completions of expired leases are accepted as well, since their bytes are on disk,
+	 * but only for a non empty part of the range leased under the given id.
+	 * @param id lease id.
+	 * @param range completed range.
+	 * @return true if the completion was merged, false if it was rejected.
+	 */
+	private synchronized boolean complete(long id, Range range) {
+		Range leased = this.leasedRanges.get(id);
+		if(leased == null || range.getStart() < leased.getStart() || range.getEnd() > leased.getEnd()
+				|| range.getStart() >= range.getEnd()){
+			System.err.println("Completion " + range.getStart() + "-" + range.getEnd() + " of lease " + id + " rejected");
+			return false;
+		}
+		this.release(id);
+		this.downloadableMetadata.addRange(range);
+		this.lastActivity = System.currentTimeMillis();
+
+		// Print current download percentage.
+		long downloaded = this.downloadableMetadata.getTotalBytesWritten();
+		int currentPercent = (int) Math.min(100, ((double) downloaded / this.downloadableMetadata.getSize()) * 100);
+		if(currentPercent != this.percent){
+			System.err.println("Downloaded " + currentPercent + "%");
+			this.percent = currentPercent;
+		}
+		IdcDm.reportAvailablePriorityRanges(this.downloadableMetadata, this.reported);
+
+		FileOutputStream metaDataFile = null;
+		ObjectOutputStream metadataStream = null;
+		try {
+			metaDataFile = new FileOutputStream(this.downloadableMetadata.getMetaDataFilename());
+			metadataStream = new ObjectOutputStream(metaDataFile);
+			metadataStream.writeObject(this.downloadableMetadata);
+			metadataStream.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Saving metadata failed");
+		}
+		return true;
+	}
+
+	/**
+	 * Check if the download is completed.
+	 * @return true if download completed, otherwise returns false.
+	 */
+	synchronized boolean isCompleted() {
+		return this.downloadableMetadata.isCompleted();
+	}
+
+	/**
+	 * Stop accepting workers if the download is completed and no worker is connected.
+	 */
+	private synchronized void stopIfDone() {
+		if(this.connections == 0 && this.downloadableMetadata.isCompleted()){
+			try {
+				this.serverSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Give up if no worker is connected and no progress was made for IDLE_TIMEOUT,
+	 * e.g. when every worker failed, so run() reports the failure instead of waiting forever.
+	 */
+	private synchronized void stopIfIdle() {
+		if(this.connections == 0 && System.currentTimeMillis() - this.lastActivity > IDLE_TIMEOUT){
+			System.err.println("No workers for " + IDLE_TIMEOUT / 1000 + " seconds");
+			try {
+				this.serverSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Answer the requests of a single worker connection until it disconnects.
+	 * @param socket
+	 * @throws IOException
+	 */
+	private void serve(Socket socket) throws IOException {
+		socket.setSoTimeout(READ_TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+		String line;
+
+		try {
+			while((line = in.readLine()) != null){
+				String[] request = line.trim().split(" ");
+
+				if(request[0].equals("INFO")){
+					out.println("FILE " + this.downloadableMetadata.getSize() + " " + this.downloadableMetadata.getUrl());
+				} else if(request[0].equals("LEASE")){
+					if(this.isCompleted()){
+						out.println("DONE");
+						continue;
+					}
+					Lease lease = this.lease();
+					if(lease == null){
+						out.println("WAIT");
+					} else {
+						out.println("RANGE " + lease.id + " " + lease.range.getStart() + " " + lease.range.getEnd());
+					}
+				} else if(request[0].equals("RENEW") && request.length == 3){
+					boolean held = this.renew(Long.parseLong(request[1]), Long.parseLong(request[2]));
+					out.println(held ? "OK" : "EXPIRED");
+				} else if(request[0].equals("RELEASE") && request.length == 2){
+					this.release(Long.parseLong(request[1]));
+					out.println("OK");
+				} else if(request[0].equals("COMPLETE") && request.length == 4){
+					Range range = new Range(Long.parseLong(request[2]), Long.parseLong(request[3]));
+					boolean merged = this.complete(Long.parseLong(request[1]), range);
+					out.println(merged ? "OK" : "ERROR");
+				} else {
+					out.println("ERROR");
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			IdcDm.reportAvailablePriorityRanges(this.downloadableMetadata, this.reported);
+		}
+		this.stopIfDone();
+		while(!this.serverSocket.isClosed()){
+			final Socket socket;
+			try {
+				socket = this.serverSocket.accept();
+			} catch (SocketTimeoutException e) {
+				this.stopIfIdle();
+				continue;
+			} catch (SocketException e) {
+				// Server socket closed, download completed or idle.
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			synchronized (this) {
+				this.connections++;
+				this.lastActivity = System.currentTimeMillis();
+			}
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException | NumberFormatException e) {
+						System.err.println("Worker " + socket.getRemoteSocketAddress() + " disconnected");
+					} finally {
+						synchronized (SegmentCoordinator.this) {
+							connections--;
+							lastActivity = System.currentTimeMillis();
+						}
+						stopIfDone();
+					}
+				}
+			}).start();
+		}
+
+		// Print download status.
+		if(this.isCompleted()){
+			System.err.println("Download succeeded");
+			// Delete metadata file.
+			new File(this.downloadableMetadata.getMetaDataFilename()).delete();
+		} else {
+			System.err.println("Download failed");
+		}
+	}
+
+	/**
+	 * A range leased to a worker until its expiration time, with the number of bytes the worker reported written.
+	 */
+	private static class Lease {
+		private final long id;
+		private final Range range;
+		private long expiration;
+		private long progress;
+
+		Lease(long id, Range range, long expiration) {
+			this.id = id;
+			this.range = range;
+			this.expiration = expiration;
+			this.progress = 0;
+		}
+	}
+}
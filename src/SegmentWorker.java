@@ -0,0 +1,209 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A runnable class which leases segments from a SegmentCoordinator, downloads them using HTTPRangeGetter,
+ * writes them to the (possibly shared) download file and reports their completion to the coordinator.
+ *
+ * Segments are written synchronously to the underlying storage device before reporting completion.
+ * While downloading, the worker renews its lease; if it fails, only the bytes written are reported as completed.
+ * If the worker dies, its lease expires and the coordinator leases the segment to another worker.
+ */
+public class SegmentWorker implements Runnable {
+
+    private static final int WAIT_TIME = 500;
+    private static final int MAX_FAILURES = 5;
+    private final String host;
+    private final int port;
+    private final String url;
+    private final String filename;
+    private final TokenBucket tokenBucket;
+
+    SegmentWorker(String host, int port, String url, TokenBucket tokenBucket) {
+        this.host = host;
+        this.port = port;
+        this.url = url;
+        this.filename = DownloadableMetadata.getName(url);
+        this.tokenBucket = tokenBucket;
+    }
+
+    /**
+     * Ask the coordinator for the URL and size of the file.
+     * @param host coordinator host.
+     * @param port coordinator port.
+     * @return the coordinator's reply: "FILE size url".
+     * @throws IOException
+     */
+    static String[] getInfo(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("INFO");
+            String reply = in.readLine();
+            if(reply == null || !reply.startsWith("FILE ")){
+                throw new IOException("Unexpected reply: " + reply);
+            }
+            return reply.split(" ", 3);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Lease segments and download them until the coordinator reports the download is done.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void downloadSegments() throws IOException, InterruptedException {
+        Socket socket = new Socket(this.host, this.port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        // Create download file if needed, other workers may be writing to it as well.
+        File file = new File(this.filename);
+        file.createNewFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rwd");
+        int failures = 0;
+
+        try {
+            while(true){
+                String reply = this.request(in, out, "LEASE");
+                String[] lease = reply.split(" ");
+                if(lease[0].equals("DONE")){
+                    return;
+                }
+                if(lease[0].equals("WAIT")){
+                    Thread.sleep(WAIT_TIME);
+                    continue;
+                }
+                if(!lease[0].equals("RANGE") || lease.length != 4){
+                    throw new IOException("Unexpected reply: " + reply);
+                }
+
+                long start = Long.parseLong(lease[2]);
+                long end = Long.parseLong(lease[3]);
+                long written = this.downloadSegment(in, out, randomAccessFile, lease[1], start, end);
+
+                // Report only the bytes which are on disk, the rest of the segment is leased again.
+                if(written > 0){
+                    String completion = this.request(in, out, "COMPLETE " + lease[1] + " " + start + " " + (start + written));
+                    if(!completion.equals("OK")){
+                        System.err.println("Completion of lease " + lease[1] + " rejected: " + completion);
+                    }
+                } else {
+                    this.request(in, out, "RELEASE " + lease[1]);
+                }
+
+                if(written == 0){
+                    failures++;
+                    if(failures >= MAX_FAILURES){
+                        throw new IOException("Segment downloads failed " + failures + " times in a row");
+                    }
+                    Thread.sleep(WAIT_TIME);
+                } else {
+                    failures = 0;
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+            socket.close();
+        }
+    }
+
+    /**
+     * Send a request to the coordinator and wait for its reply.
+     * @param in coordinator input.
+     * @param out coordinator output.
+     * @param request request line.
+     * @return reply line.
+     * @throws IOException
+     */
+    private String request(BufferedReader in, PrintWriter out, String request) throws IOException {
+        out.println(request);
+        String reply = in.readLine();
+        if(reply == null){
+            throw new IOException("Coordinator disconnected");
+        }
+        return reply;
+    }
+
+    /**
+     * Download a single segment and write it to the download file while it arrives.
+     * Every RENEW_INTERVAL the lease is renewed with the number of bytes written so far.
+     * @param in coordinator input.
+     * @param out coordinator output.
+     * @param randomAccessFile download file.
+     * @param leaseId lease id.
+     * @param start segment start position.
+     * @param end segment end position (not included).
+     * @return number of bytes written from the segment start (less than the segment length on failure).
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private long downloadSegment(BufferedReader in, PrintWriter out, RandomAccessFile randomAccessFile,
+            String leaseId, long start, long end) throws IOException, InterruptedException {
+        final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+        final HTTPRangeGetter httpRangeGetter = new HTTPRangeGetter(this.url, new Range(start, end - 1), queue, this.tokenBucket);
+        final IOException[] failure = new IOException[1];
+        Thread getterT = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    httpRangeGetter.downloadRange();
+                } catch (IOException e) {
+                    failure[0] = e;
+                } catch (InterruptedException e) {
+                    failure[0] = new IOException(e);
+                }
+            }
+        });
+        getterT.start();
+
+        long written = 0;
+        long lastRenew = System.currentTimeMillis();
+        while(getterT.isAlive() || !queue.isEmpty()){
+            Chunk chunk = queue.poll(WAIT_TIME, TimeUnit.MILLISECONDS);
+
+            // Chunks of a single range arrive in order, so the written bytes are always a prefix of the segment.
+            if(chunk != null && chunk.getOffset() == start + written){
+                long length = Math.min(chunk.getSizeInBytes(), end - chunk.getOffset());
+                if(length > 0){
+                    randomAccessFile.seek(chunk.getOffset());
+                    randomAccessFile.write(chunk.getData(), 0, (int) length);
+                    written += length;
+                }
+            }
+
+            if(System.currentTimeMillis() - lastRenew >= SegmentCoordinator.RENEW_INTERVAL){
+                this.request(in, out, "RENEW " + leaseId + " " + written);
+                lastRenew = System.currentTimeMillis();
+            }
+        }
+        getterT.join();
+
+        if(failure[0] != null){
+            System.err.println("Segment " + start + "-" + (end - 1) + " failed: " + failure[0].getMessage());
+        } else if(written < end - start){
+            System.err.println("Segment " + start + "-" + (end - 1) + " incomplete: received " + written + " bytes");
+        }
+        return written;
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.downloadSegments();
+        } catch (IOException | InterruptedException | NumberFormatException e) {
+            e.printStackTrace();
+            System.err.println("Download failed");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Thread-safe counters of a download run, shared by all HTTPRangeGetters of the run:
+ * number of requests, failed requests, downloaded bytes and total time to first byte.
+ */
+class TransferStatistics {
+
+	private long requests;
+	private long errors;
+	private long bytes;
+	private long totalTimeToFirstByte;
+
+	TransferStatistics() {
+		this.requests = 0;
+		this.errors = 0;
+		this.bytes = 0;
+		this.totalTimeToFirstByte = 0;
+	}
+
+	/**
+	 * Record a successful request.
+	 * @param timeToFirstByte time from sending the request to receiving the response, in ms.
+	 */
+	synchronized void recordRequest(long timeToFirstByte) {
+		this.requests++;
+		this.totalTimeToFirstByte += timeToFirstByte;
+	}
+
+	/**
+	 * Record a failed request.
+	 */
+	synchronized void recordError() {
+		this.requests++;
+		this.errors++;
+	}
+
+	/**
+	 * Record downloaded bytes.
+	 * @param bytes
+	 */
+	synchronized void recordBytes(long bytes) {
+		this.bytes += bytes;
+	}
+
+	/**
+	 * Get number of downloaded bytes.
+	 * @return number of downloaded bytes.
+	 */
+	synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Get average time to first byte of successful requests.
+	 * @return average time to first byte in ms, or 0 if there were no successful requests.
+	 */
+	synchronized long getAverageTimeToFirstByte() {
+		long successful = this.requests - this.errors;
+		return successful == 0 ? 0 : this.totalTimeToFirstByte / successful;
+	}
+
+	/**
+	 * Get the fraction of failed requests.
+	 * @return error rate, or 0 if there were no requests.
+	 */
+	synchronized double getErrorRate() {
+		return this.requests == 0 ? 0 : (double) this.errors / this.requests;
+	}
+}